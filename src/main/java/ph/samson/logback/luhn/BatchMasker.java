@@ -0,0 +1,192 @@
+/*
+ * Copyright 2013 samson.ph.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ph.samson.logback.luhn;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BatchMasker masks many messages at once for {@link LuhnMaskingConverter}.
+ *
+ * Messages are masked longest first, so the buffer shared by the batch only
+ * grows while masking the first message. Batches of at least
+ * `PARALLEL_THRESHOLD` messages are split into `parallelism` parts of about
+ * the same total length, each masked on its own thread with its own buffer.
+ *
+ * Messages are read from and written to the given lists by index, so a batch
+ * allocates nothing per message besides the masked messages themselves.
+ */
+final class BatchMasker {
+
+    /**
+     * Smallest batch worth masking in parallel.
+     */
+    static final int PARALLEL_THRESHOLD = 128;
+
+    private final int parallelism;
+    private final ForkJoinPool pool;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong chars = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+    private volatile double lastThroughput;
+
+    BatchMasker(int parallelism) {
+        this.parallelism = parallelism;
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    /**
+     * Mask `messages` into `masked`. The element of `masked` at each index is
+     * set to the masked message at the same index of `messages`. Both lists
+     * should support fast positional access, and `masked` can be the same
+     * list as `messages`.
+     */
+    void mask(final List<String> messages, final List<String> masked,
+            final boolean unicodeDigits, final PanTokenizer tokenizer) {
+        final long start = System.nanoTime();
+        final int count = messages.size();
+
+        // length in the high bits and index in the low bits so that sorting
+        // orders by length without boxing
+        final long[] order = new long[count];
+        long totalChars = 0;
+        for (int i = 0; i < count; i++) {
+            String message = messages.get(i);
+            int length = message == null ? 0 : message.length();
+            order[i] = ((long) length << 32) | i;
+            totalChars += length;
+        }
+        Arrays.sort(order);
+
+        if (pool == null || pool.isShutdown() || count < PARALLEL_THRESHOLD) {
+            maskInOrder(messages, masked, order, 0, 1, unicodeDigits, tokenizer);
+        } else {
+            maskInParallel(messages, masked, order, unicodeDigits, tokenizer);
+        }
+
+        final long elapsed = System.nanoTime() - start;
+        batches.incrementAndGet();
+        this.messages.addAndGet(count);
+        chars.addAndGet(totalChars);
+        nanos.addAndGet(elapsed);
+        lastThroughput = elapsed == 0 ? 0 : count * 1e9 / elapsed;
+    }
+
+    /**
+     * Mask every `step`-th message of `order`, from the longest down,
+     * starting at `first`.
+     */
+    private static void maskInOrder(List<String> messages, List<String> masked,
+            long[] order, int first, int step, boolean unicodeDigits,
+            PanTokenizer tokenizer) {
+        final StringBuilder buffer = new StringBuilder();
+        for (int i = order.length - 1 - first; i >= 0; i -= step) {
+            final int index = (int) order[i];
+            masked.set(index, LuhnMaskingConverter.mask(
+                    messages.get(index), unicodeDigits, tokenizer, buffer));
+        }
+    }
+
+    private void maskInParallel(List<String> messages, List<String> masked,
+            long[] order, boolean unicodeDigits, PanTokenizer tokenizer) {
+        // dealing the longest first, one to each part in turn, gives parts of
+        // about the same total length
+        final MaskPart[] parts = new MaskPart[parallelism];
+        for (int p = 0; p < parallelism; p++) {
+            parts[p] = new MaskPart(messages, masked, order, p, parallelism,
+                    unicodeDigits, tokenizer);
+        }
+
+        // invoke waits for the parts without being interrupted, leaving the
+        // caller's interrupt status as it was, and rethrows their exceptions
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(parts);
+            }
+        });
+    }
+
+    /**
+     * Stop the parallel masking threads. Later batches are masked on the
+     * calling thread.
+     */
+    void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    long getBatchCount() {
+        return batches.get();
+    }
+
+    long getMessageCount() {
+        return messages.get();
+    }
+
+    long getCharCount() {
+        return chars.get();
+    }
+
+    long getNanos() {
+        return nanos.get();
+    }
+
+    double getLastThroughput() {
+        return lastThroughput;
+    }
+
+    /**
+     * One part of a batch masked in parallel: every `step`-th message of
+     * `order` starting at `first`.
+     */
+    private static final class MaskPart extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> messages;
+        private final List<String> masked;
+        private final long[] order;
+        private final int first;
+        private final int step;
+        private final boolean unicodeDigits;
+        private final PanTokenizer tokenizer;
+
+        MaskPart(List<String> messages, List<String> masked, long[] order,
+                int first, int step, boolean unicodeDigits,
+                PanTokenizer tokenizer) {
+            this.messages = messages;
+            this.masked = masked;
+            this.order = order;
+            this.first = first;
+            this.step = step;
+            this.unicodeDigits = unicodeDigits;
+            this.tokenizer = tokenizer;
+        }
+
+        @Override
+        protected void compute() {
+            maskInOrder(messages, masked, order, first, step, unicodeDigits,
+                    tokenizer);
+        }
+    }
+}
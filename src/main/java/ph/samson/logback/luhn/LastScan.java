@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013 samson.ph.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ph.samson.logback.luhn;
+
+/**
+ * LastScan records, per thread, the last message scanned by
+ * {@link LuhnFilter} and where the first card number in it starts, if any.
+ *
+ * Filters and converters attached to an appender are called on the same
+ * thread for the same event, and the event's formatted message is the same
+ * `String` instance each time. So when the filter has already scanned a
+ * message, {@link LuhnMaskingConverter} can return it as is if it is clean,
+ * or copy everything before the first card number and start masking there,
+ * instead of scanning the message again from the start.
+ *
+ * Only the filter records scans, and the converter clears the record when it
+ * reads it, so at most one message per thread is held until the next event.
+ * Until a filter has recorded a scan, reading the record is a single
+ * volatile read and the converter pays nothing else for it.
+ */
+final class LastScan {
+
+    /**
+     * Returned by `take` when the message was scanned and has no card
+     * numbers. The same as `LuhnMaskingConverter.findCardNumber` returns.
+     */
+    static final int CLEAN = -1;
+
+    /**
+     * Returned by `take` when there is no scan recorded for the message.
+     */
+    static final int UNSCANNED = -2;
+
+    private static final ThreadLocal<LastScan> LAST = new ThreadLocal<LastScan>() {
+        @Override
+        protected LastScan initialValue() {
+            return new LastScan();
+        }
+    };
+
+    /**
+     * Whether any filter has recorded a scan. Converters skip the thread
+     * local lookup until one has.
+     */
+    private static volatile boolean recording;
+
+    private String message;
+    private boolean unicodeDigits;
+    private int cardStart;
+
+    private LastScan() {
+    }
+
+    /**
+     * Record the result of scanning a message on this thread.
+     *
+     * @param message the scanned message
+     * @param unicodeDigits whether Unicode digits and separators were
+     *      recognized
+     * @param cardStart index of the first card number in the message, or
+     *      `CLEAN` if it has none
+     */
+    static void record(String message, boolean unicodeDigits, int cardStart) {
+        if (!recording) {
+            recording = true;
+        }
+        LastScan last = LAST.get();
+        last.message = message;
+        last.unicodeDigits = unicodeDigits;
+        last.cardStart = cardStart;
+    }
+
+    /**
+     * Get the scan recorded on this thread for the given message, and clear
+     * the record.
+     *
+     * @return index of the first card number in the given message instance
+     *      if it was recorded with the same `unicodeDigits` setting, `CLEAN`
+     *      if it was recorded as having no card numbers, or `UNSCANNED`
+     */
+    static int take(String message, boolean unicodeDigits) {
+        if (!recording || message == null) {
+            return UNSCANNED;
+        }
+        LastScan last = LAST.get();
+        boolean same = last.message == message
+                && last.unicodeDigits == unicodeDigits;
+        last.message = null;
+        return same ? last.cardStart : UNSCANNED;
+    }
+}
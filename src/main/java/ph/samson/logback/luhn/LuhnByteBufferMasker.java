@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013 samson.ph.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ph.samson.logback.luhn;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import static ph.samson.logback.luhn.MaskTables.*;
+
+/**
+ * LuhnByteBufferMasker masks possible credit card numbers in ASCII or UTF-8
+ * encoded bytes, using the same rules as {@link LuhnMaskingConverter}. It works
+ * on heap and direct buffers alike and never decodes them into a `String`, so
+ * wire payloads can be masked before logging without a copy and a transcode.
+ *
+ * Only the ASCII digits `0` to `9` are recognized. Since the mask of a card
+ * number is as long as the digits it replaces, masking never changes the
+ * length of the data.
+ */
+public final class LuhnByteBufferMasker {
+
+    /**
+     * The minimum number of digits a credit card can have.
+     */
+    private static final int MIN_CC_DIGITS = 13;
+
+    private LuhnByteBufferMasker() {
+    }
+
+    /**
+     * Mask the possible credit card numbers between the given absolute
+     * indices of a buffer, in place. The buffer's position and limit are not
+     * changed.
+     *
+     * @param buffer the buffer to mask
+     * @param from index of the first byte to scan
+     * @param to index after the last byte to scan
+     * @return the number of card numbers masked
+     * @throws IndexOutOfBoundsException if the range is not within the
+     *      buffer's limit
+     * @throws java.nio.ReadOnlyBufferException if the buffer is read-only and
+     *      there is something to mask
+     */
+    public static int maskInPlace(ByteBuffer buffer, int from, int to) {
+        if (from < 0 || to > buffer.limit() || from > to) {
+            throw new IndexOutOfBoundsException("Range [" + from + ", " + to
+                    + ") is not within limit " + buffer.limit());
+        }
+
+        int masked = 0;
+        int numberStart = -1;
+        int digitsSeen = 0;
+        int last4pos0 = -1, last4pos1 = -1, last4pos2 = -1, last4pos3 = -1;
+        int pos;
+        byte currentClass;
+
+        for (pos = from; pos < to; pos++) {
+            // bytes of multi-byte UTF-8 sequences are all above ASCII and
+            // classified as OTHER
+            currentClass = charClass(buffer.get(pos) & 0xff, false);
+            if (currentClass == DIGIT) {
+                digitsSeen++;
+
+                if (numberStart == -1) {
+                    numberStart = pos;
+                }
+
+                last4pos0 = last4pos1;
+                last4pos1 = last4pos2;
+                last4pos2 = last4pos3;
+                last4pos3 = pos;
+            } else if (digitsSeen > 0 && currentClass != SEPARATOR) {
+                if (digitsSeen >= MIN_CC_DIGITS
+                        && maskCardNumber(buffer, numberStart, last4pos0, last4pos3 + 1)) {
+                    masked++;
+                }
+                numberStart = -1;
+                digitsSeen = 0;
+            }
+        }
+
+        if (numberStart != -1 && digitsSeen >= MIN_CC_DIGITS
+                && maskCardNumber(buffer, numberStart, last4pos0, pos)) {
+            masked++;
+        }
+
+        return masked;
+    }
+
+    /**
+     * Mask the possible credit card numbers in the given buffer's remaining
+     * bytes, in place. The buffer's position and limit are not changed.
+     *
+     * @param buffer the buffer to mask
+     * @return the number of card numbers masked
+     */
+    public static int maskInPlace(ByteBuffer buffer) {
+        return maskInPlace(buffer, buffer.position(), buffer.limit());
+    }
+
+    /**
+     * Write the remaining bytes of `src` to `dst` with the possible credit
+     * card numbers masked. The positions of both buffers are advanced by the
+     * number of bytes written, as with `dst.put(src)`.
+     *
+     * @param src the bytes to mask
+     * @param dst receives the masked bytes
+     * @return the number of card numbers masked
+     * @throws BufferOverflowException if `dst` has less room than `src` has
+     *      remaining bytes. Neither buffer is changed
+     */
+    public static int mask(ByteBuffer src, ByteBuffer dst) {
+        if (dst.remaining() < src.remaining()) {
+            throw new BufferOverflowException();
+        }
+        final int start = dst.position();
+        dst.put(src);
+        return maskInPlace(dst, start, dst.position());
+    }
+
+    /**
+     * If the digits from `numberStart` to `numberEnd` pass the Luhn check,
+     * overwrite all but the last four with the mask.
+     *
+     * @return `true` if the number was masked
+     */
+    private static boolean maskCardNumber(ByteBuffer buffer, int numberStart,
+            int last4Start, int numberEnd) {
+        int sum = 0;
+        int digit, addend;
+        boolean doubled = false;
+        byte b;
+        for (int i = numberEnd - 1; i >= numberStart; i--) {
+            b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                continue; // separator
+            }
+            digit = b - '0';
+            if (doubled) {
+                addend = digit * 2;
+                if (addend > 9) {
+                    addend -= 9;
+                }
+            } else {
+                addend = digit;
+            }
+            sum += addend;
+            doubled = !doubled;
+        }
+        if ((sum % 10) != 0) {
+            return false;
+        }
+
+        final String mask = MaskTables.mask(last4Start - numberStart);
+        for (int i = 0; i < mask.length(); i++) {
+            buffer.put(numberStart + i, (byte) mask.charAt(i));
+        }
+        return true;
+    }
+}
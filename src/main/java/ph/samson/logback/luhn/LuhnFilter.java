@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013 samson.ph.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ph.samson.logback.luhn;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.filter.AbstractMatcherFilter;
+import ch.qos.logback.core.spi.FilterReply;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LuhnFilter matches events whose formatted message contains a sequence of
+ * digits that passes the Luhn check, using the same rules as
+ * {@link LuhnMaskingConverter}. Use it to route events with possible credit
+ * card numbers to a restricted appender, or to keep them out of others.
+ *
+ *     <appender name="RESTRICTED" class="ch.qos.logback.core.FileAppender">
+ *         <filter class="ph.samson.logback.luhn.LuhnFilter">
+ *             <onMatch>ACCEPT</onMatch>
+ *             <onMismatch>DENY</onMismatch>
+ *         </filter>
+ *         ...
+ *     </appender>
+ *
+ * The filter only checks whether a message has a card number, stopping at
+ * the first one, and builds no masked message. A `LuhnMaskingConverter`
+ * formatting the same event on the same thread returns a clean message
+ * without scanning it again, and masks the others starting from the first
+ * card number the filter found.
+ */
+public class LuhnFilter extends AbstractMatcherFilter<ILoggingEvent> {
+
+    private final AtomicLong matches = new AtomicLong();
+    private boolean unicodeDigits;
+
+    @Override
+    public FilterReply decide(ILoggingEvent event) {
+        if (!isStarted()) {
+            return FilterReply.NEUTRAL;
+        }
+
+        String message = event.getFormattedMessage();
+        int cardStart = LuhnMaskingConverter.findCardNumber(message, unicodeDigits);
+        LastScan.record(message, unicodeDigits, cardStart);
+        if (cardStart != LastScan.CLEAN) {
+            matches.incrementAndGet();
+            return onMatch;
+        } else {
+            return onMismatch;
+        }
+    }
+
+    /**
+     * @return the number of events matched so far
+     */
+    public long getMatchCount() {
+        return matches.get();
+    }
+
+    public boolean isUnicodeDigits() {
+        return unicodeDigits;
+    }
+
+    /**
+     * Whether to recognize Unicode digits and separators. This should be the
+     * same as the `unicodeDigits` option of the `LuhnMaskingConverter` in use
+     * for a clean scan to be reused by the converter.
+     */
+    public void setUnicodeDigits(boolean unicodeDigits) {
+        this.unicodeDigits = unicodeDigits;
+    }
+}
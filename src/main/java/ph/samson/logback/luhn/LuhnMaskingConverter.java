@@ -17,6 +17,15 @@ package ph.samson.logback.luhn;
 
 import ch.qos.logback.classic.pattern.ClassicConverter;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.RandomAccess;
+import static ph.samson.logback.luhn.MaskTables.*;
 
 /**
  * LuhnMaskingConverter replaces sequences of digits that pass the Luhn check
@@ -38,6 +47,36 @@ import ch.qos.logback.classic.spi.ILoggingEvent;
  *         </root>
  *     </configuration>
  *
+ * Instead of masking, card numbers can be replaced with a token derived from a
+ * keyed HMAC of the card number so the same card can be correlated across log
+ * lines. The key is loaded from a local keystore given in the conversion
+ * word's options. E.g.,
+ *
+ *     %maskedMsg{keyStore=/etc/app/pan-token.p12, storePassword=${PAN_STORE_PASS}, keyAlias=pan-token}
+ *
+ * The supported options are:
+ *
+ * - `keyStore`: path to the keystore file. Tokenization is enabled only when
+ *   this is given.
+ * - `keyStoreType`: the keystore type. Defaults to `PKCS12`.
+ * - `storePassword`: the keystore password.
+ * - `keyAlias`: alias of the secret key entry to use. Required with `keyStore`.
+ * - `keyPassword`: the key password. Defaults to `storePassword`.
+ * - `tokenCacheSize`: maximum number of tokens cached. Defaults to 1024.
+ *   `0` disables the cache.
+ * - `tokenCacheTtl`: milliseconds a cached token is kept. Defaults to 60000.
+ *
+ * Only the ASCII digits `0` to `9` are considered by default. With the
+ * `unicodeDigits=true` option, any Unicode decimal digit (e.g., full-width,
+ * Arabic-Indic or mathematical digits, including those outside the Basic
+ * Multilingual Plane) is recognized, and Unicode dashes and space separators
+ * are accepted between digits.
+ *
+ * Besides formatting events, the converter can mask batches of messages with
+ * `maskBatch`. Large batches are masked in parallel on up to
+ * `batchParallelism` threads. Defaults to 1, masking batches on the calling
+ * thread.
+ *
  * @author Edward Samson <edward@samson.ph>
  */
 public class LuhnMaskingConverter extends ClassicConverter {
@@ -46,62 +85,333 @@ public class LuhnMaskingConverter extends ClassicConverter {
      * The minimum number of digits a credit card can have.
      */
     private static final int MIN_CC_DIGITS = 13;
-    private static final String MASK_LABEL = "MASKED";
-    private static final int MASK_LABEL_LENGTH = MASK_LABEL.length();
-    private static final String[] MASK_LOOKUPS;
-    private static final int MASK_LOOKUPS_SIZE = 20;
-
-    static {
-        MASK_LOOKUPS = new String[MASK_LOOKUPS_SIZE];
-        for (int i = 0; i < MASK_LOOKUPS.length; i++) {
-            MASK_LOOKUPS[i] = buildMask(i);
+    private static final String DEFAULT_KEY_STORE_TYPE = "PKCS12";
+    private static final int DEFAULT_TOKEN_CACHE_SIZE = 1024;
+    private static final long DEFAULT_TOKEN_CACHE_TTL = 60000;
+    private static final int DEFAULT_BATCH_PARALLELISM = 1;
+
+    private boolean unicodeDigits;
+    private BatchMasker batchMasker = new BatchMasker(DEFAULT_BATCH_PARALLELISM);
+
+    private PanTokenizer tokenizer;
+
+    @Override
+    public void start() {
+        String keyStore = null;
+        String keyStoreType = DEFAULT_KEY_STORE_TYPE;
+        String storePassword = null;
+        String keyAlias = null;
+        String keyPassword = null;
+        int tokenCacheSize = DEFAULT_TOKEN_CACHE_SIZE;
+        long tokenCacheTtl = DEFAULT_TOKEN_CACHE_TTL;
+        int batchParallelism = DEFAULT_BATCH_PARALLELISM;
+        unicodeDigits = false;
+
+        List<String> options = getOptionList();
+        if (options != null) {
+            for (String option : options) {
+                int eq = option.indexOf('=');
+                if (eq == -1) {
+                    addWarn("Ignoring unknown option [" + option + "]");
+                    continue;
+                }
+                String name = option.substring(0, eq).trim();
+                String value = option.substring(eq + 1).trim();
+                try {
+                    if ("keyStore".equals(name)) {
+                        keyStore = value;
+                    } else if ("keyStoreType".equals(name)) {
+                        keyStoreType = value;
+                    } else if ("storePassword".equals(name)) {
+                        storePassword = value;
+                    } else if ("keyAlias".equals(name)) {
+                        keyAlias = value;
+                    } else if ("keyPassword".equals(name)) {
+                        keyPassword = value;
+                    } else if ("tokenCacheSize".equals(name)) {
+                        tokenCacheSize = Integer.parseInt(value);
+                    } else if ("tokenCacheTtl".equals(name)) {
+                        tokenCacheTtl = Long.parseLong(value);
+                    } else if ("unicodeDigits".equals(name)) {
+                        unicodeDigits = Boolean.parseBoolean(value);
+                    } else if ("batchParallelism".equals(name)) {
+                        batchParallelism = Integer.parseInt(value);
+                    } else {
+                        addWarn("Ignoring unknown option [" + name + "]");
+                    }
+                } catch (NumberFormatException ex) {
+                    addError("Invalid value for option [" + name + "]", ex);
+                }
+            }
+        }
+
+        if (tokenizer != null) {
+            tokenizer.close();
+            tokenizer = null;
+        }
+        if (keyStore != null && keyAlias == null) {
+            addError("Option [keyAlias] is required with [keyStore]."
+                    + " Card numbers will be masked instead.");
+        } else if (keyStore != null) {
+            char[] storePass = storePassword == null ? null : storePassword.toCharArray();
+            char[] keyPass = keyPassword == null ? storePass : keyPassword.toCharArray();
+            try {
+                tokenizer = PanTokenizer.fromKeyStore(new File(keyStore),
+                        keyStoreType, storePass, keyAlias, keyPass,
+                        tokenCacheSize, tokenCacheTtl);
+            } catch (IOException ex) {
+                addError("Failed to read key store [" + keyStore
+                        + "]. Card numbers will be masked instead.", ex);
+            } catch (GeneralSecurityException ex) {
+                addError("Failed to load key [" + keyAlias + "] from ["
+                        + keyStore + "]. Card numbers will be masked instead.", ex);
+            }
+        }
+
+        batchMasker.shutdown();
+        batchMasker = new BatchMasker(Math.max(batchParallelism, 1));
+
+        super.start();
+    }
+
+    @Override
+    public void stop() {
+        if (tokenizer != null) {
+            addInfo("Token cache hits: " + tokenizer.getCacheHits()
+                    + ", misses: " + tokenizer.getCacheMisses());
+            tokenizer.close();
+            tokenizer = null;
         }
+        batchMasker.shutdown();
+        super.stop();
     }
 
     @Override
     public String convert(ILoggingEvent e) {
-        return mask(e.getFormattedMessage());
+        String formattedMessage = e.getFormattedMessage();
+        int cardStart = LastScan.take(formattedMessage, unicodeDigits);
+        if (cardStart == LastScan.CLEAN) {
+            return formattedMessage;
+        } else if (cardStart == LastScan.UNSCANNED) {
+            return mask(formattedMessage, unicodeDigits, tokenizer);
+        }
+        return mask(formattedMessage, cardStart, unicodeDigits, tokenizer, null);
+    }
+
+    /**
+     * @return number of card number tokens served from the token cache
+     */
+    public long getTokenCacheHits() {
+        PanTokenizer t = tokenizer;
+        return t == null ? 0 : t.getCacheHits();
+    }
+
+    /**
+     * @return number of card number tokens that had to be computed
+     */
+    public long getTokenCacheMisses() {
+        PanTokenizer t = tokenizer;
+        return t == null ? 0 : t.getCacheMisses();
+    }
+
+    /**
+     * @return fraction of card number tokens served from the token cache
+     */
+    public double getTokenCacheHitRate() {
+        PanTokenizer t = tokenizer;
+        return t == null ? 0 : t.getCacheHitRate();
+    }
+
+    /**
+     * Mask all of the given messages. This gives the same results as masking
+     * each message on its own but sets up once for the whole batch, and masks
+     * large batches in parallel if `batchParallelism` is set.
+     *
+     * @param messages the messages to mask
+     * @param masked receives the masked messages, at the same index as in
+     *      `messages`. It can be reused across batches
+     * @throws IllegalArgumentException if `masked` is shorter than `messages`
+     */
+    public void maskBatch(String[] messages, String[] masked) {
+        if (masked.length < messages.length) {
+            throw new IllegalArgumentException("Output array length "
+                    + masked.length + " is less than " + messages.length);
+        }
+        batchMasker.mask(Arrays.asList(messages), Arrays.asList(masked),
+                unicodeDigits, tokenizer);
+    }
+
+    /**
+     * Mask all of the given messages. See `maskBatch(String[], String[])`.
+     *
+     * Lists with fast positional access, like `ArrayList`, are masked without
+     * copying. Other lists are copied into arrays first.
+     *
+     * @param messages the messages to mask
+     * @param masked receives the masked messages, in the same order as
+     *      `messages`. If it is already the same size as `messages` its
+     *      elements are replaced, so it can be a fixed-size list, otherwise
+     *      it is cleared and refilled. It can be reused across batches, or be
+     *      `messages` itself to mask the messages in place
+     */
+    public void maskBatch(List<String> messages, List<String> masked) {
+        final int count = messages.size();
+        if (!(messages instanceof RandomAccess)
+                || !(masked instanceof RandomAccess)) {
+            String[] out = new String[count];
+            maskBatch(messages.toArray(new String[count]), out);
+            if (masked.size() == count) {
+                for (ListIterator<String> it = masked.listIterator(); it.hasNext();) {
+                    it.next();
+                    it.set(out[it.previousIndex()]);
+                }
+            } else {
+                masked.clear();
+                masked.addAll(Arrays.asList(out));
+            }
+            return;
+        }
+
+        if (masked.size() != count) {
+            masked.clear();
+            if (masked instanceof ArrayList) {
+                ((ArrayList<String>) masked).ensureCapacity(count);
+            }
+            for (int i = 0; i < count; i++) {
+                masked.add(null);
+            }
+        }
+        batchMasker.mask(messages, masked, unicodeDigits, tokenizer);
+    }
+
+    /**
+     * @return number of batches masked
+     */
+    public long getBatchCount() {
+        return batchMasker.getBatchCount();
+    }
+
+    /**
+     * @return total number of messages masked in batches
+     */
+    public long getBatchMessageCount() {
+        return batchMasker.getMessageCount();
+    }
+
+    /**
+     * @return total number of characters masked in batches
+     */
+    public long getBatchCharCount() {
+        return batchMasker.getCharCount();
+    }
+
+    /**
+     * @return total time spent masking batches, in nanoseconds
+     */
+    public long getBatchNanos() {
+        return batchMasker.getNanos();
+    }
+
+    /**
+     * @return messages per second masked in the last batch
+     */
+    public double getLastBatchThroughput() {
+        return batchMasker.getLastThroughput();
     }
 
     static String mask(String formattedMessage) {
-        if (!hasEnoughDigits(formattedMessage)) {
+        return mask(formattedMessage, false, null);
+    }
+
+    /**
+     * Mask or tokenize the possible credit card numbers in the given message.
+     *
+     * @param formattedMessage the message to mask
+     * @param unicodeDigits whether to recognize Unicode digits and separators
+     * @param tokenizer if not `null`, card numbers are replaced with their
+     *      token instead of a mask
+     * @return the masked message, or `formattedMessage` itself if it has no
+     *      card numbers
+     */
+    static String mask(String formattedMessage, boolean unicodeDigits,
+            PanTokenizer tokenizer) {
+        return mask(formattedMessage, unicodeDigits, tokenizer, null);
+    }
+
+    /**
+     * Mask or tokenize the possible credit card numbers in the given message,
+     * building the result in the given buffer.
+     *
+     * @param buffer a buffer to reuse for building the masked message, or
+     *      `null` to allocate one if needed
+     */
+    static String mask(String formattedMessage, boolean unicodeDigits,
+            PanTokenizer tokenizer, StringBuilder buffer) {
+        if (!hasEnoughDigits(formattedMessage, unicodeDigits)) {
             return formattedMessage;
         }
+        return mask(formattedMessage, 0, unicodeDigits, tokenizer, buffer);
+    }
 
+    /**
+     * Mask or tokenize the possible credit card numbers in the given message,
+     * starting the scan at `scanStart`. The part of the message before it is
+     * copied as is.
+     *
+     * @param scanStart where to start scanning: `0`, or the index returned
+     *      by `findCardNumber` for the same message and `unicodeDigits`
+     * @param buffer a buffer to reuse for building the masked message, or
+     *      `null` to allocate one if needed
+     */
+    static String mask(String formattedMessage, int scanStart,
+            boolean unicodeDigits, PanTokenizer tokenizer,
+            StringBuilder buffer) {
         int length = formattedMessage.length();
         int unwrittenStart = 0;
         int numberStart = -1;
         int numberEnd;
         int digitsSeen = 0;
-        int[] last4pos = {-1, -1, -1, -1};
+        int last4pos0 = -1;
+        int last4pos1 = -1;
+        int last4pos2 = -1;
+        int last4pos3 = -1;
+        int digitsEnd = -1;
         int pos;
-        char current;
+        byte currentClass;
 
-        StringBuilder masked = new StringBuilder(formattedMessage.length());
+        StringBuilder masked;
+        if (buffer == null) {
+            masked = new StringBuilder(length);
+        } else {
+            masked = buffer;
+            masked.setLength(0);
+        }
 
-        for (pos = 0; pos < length; pos++) {
-            current = formattedMessage.charAt(pos);
-            if (isDigit(current)) {
+        for (pos = scanStart; pos < length; pos++) {
+            currentClass = classAt(formattedMessage, pos, unicodeDigits);
+            if (currentClass == CONTINUATION) {
+                if (digitsEnd == pos) {
+                    digitsEnd++;
+                }
+                continue;
+            }
+            if (currentClass == DIGIT) {
                 digitsSeen++;
 
                 if (numberStart == -1) {
                     numberStart = pos;
                 }
 
-                last4pos[0] = last4pos[1];
-                last4pos[1] = last4pos[2];
-                last4pos[2] = last4pos[3];
-                last4pos[3] = pos;
-            } else if (digitsSeen > 0 && current != ' ' && current != '-') {
-                numberEnd = last4pos[3] + 1;
-                if ((digitsSeen >= MIN_CC_DIGITS)
-                        && luhnCheck(stripSeparators(
-                                        formattedMessage.substring(numberStart, numberEnd)))) {
-                    masked.append(formattedMessage, unwrittenStart, numberStart);
-                    masked.append(maskString(
-                            formattedMessage.substring(numberStart, numberEnd),
-                            formattedMessage.substring(last4pos[0], numberEnd)));
-                    masked.append(formattedMessage, last4pos[0], numberEnd);
+                last4pos0 = last4pos1;
+                last4pos1 = last4pos2;
+                last4pos2 = last4pos3;
+                last4pos3 = pos;
+                digitsEnd = pos + 1;
+            } else if (digitsSeen > 0 && currentClass != SEPARATOR) {
+                numberEnd = digitsEnd;
+                if (digitsSeen >= MIN_CC_DIGITS && replaceCardNumber(masked,
+                        formattedMessage, unwrittenStart, numberStart,
+                        last4pos0, numberEnd, unicodeDigits, tokenizer)) {
                     unwrittenStart = numberEnd;
                 }
                 numberStart = -1;
@@ -110,20 +420,102 @@ public class LuhnMaskingConverter extends ClassicConverter {
         }
 
         if (numberStart != -1 && (digitsSeen >= MIN_CC_DIGITS)
-                && luhnCheck(stripSeparators(
-                                formattedMessage.substring(numberStart, pos)))) {
-            masked.append(formattedMessage, unwrittenStart, numberStart);
-            masked.append(maskString(
-                    formattedMessage.substring(numberStart, pos),
-                    formattedMessage.substring(last4pos[0], pos)));
-            masked.append(formattedMessage, last4pos[0], pos);
-        } else {
-            masked.append(formattedMessage, unwrittenStart, pos);
+                && replaceCardNumber(masked, formattedMessage, unwrittenStart,
+                        numberStart, last4pos0, pos, unicodeDigits, tokenizer)) {
+            unwrittenStart = pos;
+        }
+        if (unwrittenStart == 0) {
+            return formattedMessage;
         }
+        masked.append(formattedMessage, unwrittenStart, pos);
 
         return masked.toString();
     }
 
+    /**
+     * If the digits from `numberStart` to `numberEnd` form a possible credit
+     * card number, write the unwritten part of the message before it followed
+     * by its mask or token and the unmasked last four digits.
+     *
+     * @return `true` if a card number was written
+     */
+    private static boolean replaceCardNumber(StringBuilder masked,
+            String formattedMessage, int unwrittenStart, int numberStart,
+            int last4Start, int numberEnd, boolean unicodeDigits,
+            PanTokenizer tokenizer) {
+        if (!luhnCheck(formattedMessage, numberStart, numberEnd, unicodeDigits)) {
+            return false;
+        }
+
+        masked.append(formattedMessage, unwrittenStart, numberStart);
+        if (tokenizer == null) {
+            masked.append(MaskTables.mask(last4Start - numberStart));
+        } else {
+            masked.append(tokenizer.token(stripSeparators(
+                    formattedMessage.substring(numberStart, numberEnd),
+                    unicodeDigits)));
+        }
+        masked.append(formattedMessage, last4Start, numberEnd);
+        return true;
+    }
+
+    /**
+     * Find the first possible credit card number in the given message,
+     * without building a masked message. The scan stops at the first card
+     * number.
+     *
+     * @param formattedMessage the message to check
+     * @param unicodeDigits whether to recognize Unicode digits and separators
+     * @return index of the first card number, from which `mask` can start
+     *      scanning, or `-1` if `mask` would leave the message as it is
+     */
+    static int findCardNumber(String formattedMessage,
+            boolean unicodeDigits) {
+        if (!hasEnoughDigits(formattedMessage, unicodeDigits)) {
+            return -1;
+        }
+
+        int length = formattedMessage.length();
+        int numberStart = -1;
+        int digitsSeen = 0;
+        int digitsEnd = -1;
+        byte currentClass;
+
+        for (int pos = 0; pos < length; pos++) {
+            currentClass = classAt(formattedMessage, pos, unicodeDigits);
+            if (currentClass == CONTINUATION) {
+                if (digitsEnd == pos) {
+                    digitsEnd++;
+                }
+                continue;
+            }
+            if (currentClass == DIGIT) {
+                digitsSeen++;
+                if (numberStart == -1) {
+                    numberStart = pos;
+                }
+                digitsEnd = pos + 1;
+            } else if (digitsSeen > 0 && currentClass != SEPARATOR) {
+                if (digitsSeen >= MIN_CC_DIGITS && luhnCheck(formattedMessage,
+                        numberStart, digitsEnd, unicodeDigits)) {
+                    return numberStart;
+                }
+                numberStart = -1;
+                digitsSeen = 0;
+            }
+        }
+
+        if (digitsSeen >= MIN_CC_DIGITS && luhnCheck(formattedMessage,
+                numberStart, digitsEnd, unicodeDigits)) {
+            return numberStart;
+        }
+        return -1;
+    }
+
+    /**
+     * Check for a run of enough ASCII digits. Every message goes through this
+     * check, so it has its own loop without the Unicode classification.
+     */
     static boolean hasEnoughDigits(String formattedMessage) {
         if (formattedMessage == null) {
             return false;
@@ -135,7 +527,7 @@ public class LuhnMaskingConverter extends ClassicConverter {
 
         for (int i = 0; i < length; i++) {
             current = formattedMessage.charAt(i);
-            if (isDigit(current)) {
+            if (current >= '0' && current <= '9') {
                 if (++digits == MIN_CC_DIGITS) {
                     return true;
                 }
@@ -147,6 +539,30 @@ public class LuhnMaskingConverter extends ClassicConverter {
         return false;
     }
 
+    static boolean hasEnoughDigits(String formattedMessage, boolean unicodeDigits) {
+        if (!unicodeDigits || formattedMessage == null) {
+            return hasEnoughDigits(formattedMessage);
+        }
+
+        int digits = 0;
+        int length = formattedMessage.length();
+        byte currentClass;
+
+        for (int i = 0; i < length; i++) {
+            currentClass = classAt(formattedMessage, i, unicodeDigits);
+            if (currentClass == DIGIT) {
+                if (++digits == MIN_CC_DIGITS) {
+                    return true;
+                }
+            } else if (digits > 0 && currentClass != SEPARATOR
+                    && currentClass != CONTINUATION) {
+                digits = 0;
+            }
+        }
+
+        return false;
+    }
+
     /**
      * Implementation of the [Luhn algorithm](http://en.wikipedia.org/wiki/Luhn_algorithm)
      * to check if the given string is possibly a credit card number.
@@ -174,6 +590,48 @@ public class LuhnMaskingConverter extends ClassicConverter {
         return (sum % 10) == 0;
     }
 
+    /**
+     * Luhn check the digits in part of a message, skipping separators, without
+     * copying them out first.
+     *
+     * @param message the message holding the number
+     * @param start index of the first digit of the number
+     * @param end index after the last digit of the number. Everything between
+     *      `start` and `end` must be a digit or a separator
+     * @param unicodeDigits whether to recognize Unicode digits and separators
+     * @return `true` if the digits are a possible credit card number
+     */
+    static boolean luhnCheck(String message, int start, int end,
+            boolean unicodeDigits) {
+        int sum = 0;
+        int digit;
+        int current;
+        boolean doubled = false;
+        for (int i = end - 1; i >= start; i--) {
+            current = message.charAt(i);
+            if (unicodeDigits && Character.isLowSurrogate((char) current)
+                    && i > start
+                    && Character.isHighSurrogate(message.charAt(i - 1))) {
+                current = message.codePointAt(--i);
+            }
+            if (charClass(current, unicodeDigits) != DIGIT) {
+                continue;
+            }
+            digit = current < ASCII_LIMIT
+                    ? current - '0'
+                    : Character.digit(current, 10);
+            if (doubled) {
+                digit *= 2;
+                if (digit > 9) {
+                    digit -= 9;
+                }
+            }
+            sum += digit;
+            doubled = !doubled;
+        }
+        return (sum % 10) == 0;
+    }
+
     /**
      * Remove any ` ` and `-` characters from the given string.
      *
@@ -183,17 +641,41 @@ public class LuhnMaskingConverter extends ClassicConverter {
      *      characters is returned
      */
     static String stripSeparators(final String cardNumber) {
+        return stripSeparators(cardNumber, false);
+    }
+
+    /**
+     * Remove any separator characters from the given string. When Unicode
+     * digits are enabled, Unicode separators are also removed and all digits
+     * are converted to the ASCII digits `0` to `9`. Other characters are kept
+     * as they are.
+     *
+     * @param cardNumber the number to clean up
+     * @param unicodeDigits whether to recognize Unicode digits and separators
+     * @return if the given string contains no separators or non-ASCII digits,
+     *      the string itself is returned, otherwise a new string without
+     *      separators and with ASCII digits is returned
+     */
+    static String stripSeparators(final String cardNumber, boolean unicodeDigits) {
         final int length = cardNumber.length();
         final char[] result = new char[length];
+        boolean changed = false;
         int count = 0;
-        char cur;
-        for (int i = 0; i < length; i++) {
-            cur = cardNumber.charAt(i);
-            if (!(cur == ' ' || cur == '-')) {
-                result[count++] = cur;
+        int cur;
+        for (int i = 0; i < length; i += Character.charCount(cur)) {
+            cur = unicodeDigits ? cardNumber.codePointAt(i) : cardNumber.charAt(i);
+            int cls = charClass(cur, unicodeDigits);
+            if (cls == SEPARATOR) {
+                continue;
+            }
+            if (cls == DIGIT && cur >= ASCII_LIMIT) {
+                result[count++] = (char) ('0' + Character.digit(cur, 10));
+                changed = true;
+            } else {
+                count += Character.toChars(cur, result, count);
             }
         }
-        if (count == length) {
+        if (count == length && !changed) {
             return cardNumber;
         }
         return new String(result, 0, count);
@@ -207,53 +689,6 @@ public class LuhnMaskingConverter extends ClassicConverter {
      * @return a mask string
      */
     static String maskString(String fullNum, String unmasked) {
-        final int maskedLength = fullNum.length() - unmasked.length();
-        if (maskedLength < MASK_LOOKUPS_SIZE) {
-            return MASK_LOOKUPS[maskedLength];
-        } else {
-            return buildMask(maskedLength);
-        }
-    }
-
-    /**
-     * Create a masking string with the given length. Masks for short lengths
-     * are cached at class initialization to minimize calls to this method.
-     *
-     * @param maskedLength
-     * @return a mask string
-     */
-    static String buildMask(int maskedLength) {
-        final int pads = maskedLength - MASK_LABEL_LENGTH;
-        StringBuilder mask = new StringBuilder(maskedLength);
-        if (pads <= 0) {
-            mask.append(MASK_LABEL);
-        } else {
-            for (int i = 0; i < pads / 2; i++) {
-                mask.append('*');
-            }
-            mask.append(MASK_LABEL);
-            while (mask.length() < maskedLength) {
-                mask.append('*');
-            }
-        }
-        return mask.toString();
-    }
-
-    private static boolean isDigit(char c) {
-        switch (c) {
-            case '0':
-            case '1':
-            case '2':
-            case '3':
-            case '4':
-            case '5':
-            case '6':
-            case '7':
-            case '8':
-            case '9':
-                return true;
-            default:
-                return false;
-        }
+        return MaskTables.mask(fullNum.length() - unmasked.length());
     }
 }
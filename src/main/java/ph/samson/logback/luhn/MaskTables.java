@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 samson.ph.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ph.samson.logback.luhn;
+
+/**
+ * MaskTables holds the tables precomputed for masking, the mask strings for
+ * short lengths, and the classification of characters.
+ *
+ * It depends on nothing but `java.lang` so that native images can initialize
+ * it at build time (see `META-INF/native-image`) and start with the tables
+ * already in the image heap.
+ */
+final class MaskTables {
+
+    /**
+     * Character classes returned by `charClass`.
+     */
+    static final byte OTHER = 0;
+    static final byte DIGIT = 1;
+    static final byte SEPARATOR = 2;
+
+    /**
+     * Returned by `classAt` for the low surrogate of a surrogate pair, which
+     * was classified with its high surrogate.
+     */
+    static final byte CONTINUATION = 3;
+
+    /**
+     * Code points below this are ASCII.
+     */
+    static final int ASCII_LIMIT = 128;
+
+    private static final String MASK_LABEL = "MASKED";
+    private static final int MASK_LABEL_LENGTH = MASK_LABEL.length();
+    private static final String[] MASK_LOOKUPS;
+    private static final int MASK_LOOKUPS_SIZE = 20;
+
+    static {
+        MASK_LOOKUPS = new String[MASK_LOOKUPS_SIZE];
+        for (int i = 0; i < MASK_LOOKUPS.length; i++) {
+            MASK_LOOKUPS[i] = buildMask(i);
+        }
+    }
+
+    private MaskTables() {
+    }
+
+    /**
+     * Get a mask string with the given length.
+     *
+     * @param maskedLength length of the section to be masked
+     * @return a mask string
+     */
+    static String mask(int maskedLength) {
+        if (maskedLength < MASK_LOOKUPS_SIZE) {
+            return MASK_LOOKUPS[maskedLength];
+        } else {
+            return buildMask(maskedLength);
+        }
+    }
+
+    /**
+     * Create a masking string with the given length. Masks for short lengths
+     * are cached at class initialization to minimize calls to this method.
+     *
+     * @param maskedLength
+     * @return a mask string
+     */
+    static String buildMask(int maskedLength) {
+        final int pads = maskedLength - MASK_LABEL_LENGTH;
+        StringBuilder mask = new StringBuilder(maskedLength);
+        if (pads <= 0) {
+            mask.append(MASK_LABEL);
+        } else {
+            for (int i = 0; i < pads / 2; i++) {
+                mask.append('*');
+            }
+            mask.append(MASK_LABEL);
+            while (mask.length() < maskedLength) {
+                mask.append('*');
+            }
+        }
+        return mask.toString();
+    }
+
+    /**
+     * Classify the given code point as a `DIGIT`, a `SEPARATOR` or `OTHER`.
+     * ASCII characters are classified with a couple of range checks. Other
+     * code points are only looked up in the Unicode character database when
+     * Unicode digits are enabled.
+     */
+    static byte charClass(int c, boolean unicodeDigits) {
+        if (c <= '9') {
+            if (c >= '0') {
+                return DIGIT;
+            }
+            return c == ' ' || c == '-' ? SEPARATOR : OTHER;
+        }
+        if (c < ASCII_LIMIT || !unicodeDigits) {
+            return OTHER;
+        }
+        return unicodeClass(c);
+    }
+
+    /**
+     * Classify the character at the given index of a string. When Unicode
+     * digits are enabled, a surrogate pair is classified as one code point at
+     * its high surrogate, and its low surrogate is a `CONTINUATION`.
+     *
+     * Scanning a string by `char` with this, rather than stepping by code
+     * point, keeps the scanning loops simple counted loops.
+     */
+    static byte classAt(String s, int index, boolean unicodeDigits) {
+        final char c = s.charAt(index);
+        if (!unicodeDigits || !Character.isSurrogate(c)) {
+            return charClass(c, unicodeDigits);
+        }
+        if (Character.isLowSurrogate(c) && index > 0
+                && Character.isHighSurrogate(s.charAt(index - 1))) {
+            return CONTINUATION;
+        }
+        return charClass(s.codePointAt(index), true);
+    }
+
+    /**
+     * Classify a non-ASCII code point. Kept out of `charClass` so that it
+     * stays small enough to inline.
+     */
+    private static byte unicodeClass(int c) {
+        switch (Character.getType(c)) {
+            case Character.DECIMAL_DIGIT_NUMBER:
+                return DIGIT;
+            case Character.DASH_PUNCTUATION:
+            case Character.SPACE_SEPARATOR:
+                return SEPARATOR;
+            default:
+                return OTHER;
+        }
+    }
+}
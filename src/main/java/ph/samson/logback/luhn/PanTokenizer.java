@@ -0,0 +1,337 @@
+/*
+ * Copyright 2013 samson.ph.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ph.samson.logback.luhn;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.UnrecoverableKeyException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import javax.crypto.Mac;
+
+/**
+ * PanTokenizer replaces a card number with a truncated keyed HMAC of its
+ * digits. The same card number always yields the same token for a given key,
+ * so occurrences of a card can be correlated across log lines without
+ * exposing it.
+ *
+ * Computed tokens are kept in a bounded cache whose entries expire after a
+ * fixed time. Note that the cache key is the card number itself, its digits
+ * packed into a `long` for a compact key. That is just another form of the
+ * card number, so the cache holds recoverable card numbers for as long as
+ * their entries live. Expired entries are removed by a background timer
+ * within a quarter of the time to live, whether or not there is logging
+ * activity, and all entries are dropped when the tokenizer is closed.
+ */
+final class PanTokenizer {
+
+    static final String HMAC_ALGORITHM = "HmacSHA256";
+    static final String TOKEN_PREFIX = "[PAN:";
+    static final String TOKEN_SUFFIX = "]";
+
+    /**
+     * Number of bytes of the HMAC kept in the token.
+     */
+    static final int TOKEN_BYTES = 8;
+
+    /**
+     * Card numbers longer than this do not fit in a `long` and are never
+     * cached.
+     */
+    private static final int MAX_CACHEABLE_DIGITS = 19;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final ThreadLocal<Mac> macs;
+    private final TokenCache cache;
+
+    PanTokenizer(final Key key, int cacheSize, long cacheTtlMillis)
+            throws GeneralSecurityException {
+        newMac(key); // fail early on an unusable key
+        this.macs = new ThreadLocal<Mac>() {
+            @Override
+            protected Mac initialValue() {
+                try {
+                    return newMac(key);
+                } catch (GeneralSecurityException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        };
+        this.cache = new TokenCache(cacheSize, cacheTtlMillis);
+    }
+
+    /**
+     * Load the tokenization key from a local keystore file.
+     *
+     * @param keyStoreFile the keystore file
+     * @param keyStoreType the keystore type, e.g. `PKCS12` or `JCEKS`
+     * @param storePassword the keystore password
+     * @param alias alias of the secret key entry
+     * @param keyPassword the key password
+     * @param cacheSize maximum number of tokens to cache, `0` to disable
+     * @param cacheTtlMillis how long a cached token is kept, `0` to disable
+     *      the cache
+     * @return a tokenizer using the loaded key
+     * @throws IOException if the keystore can't be read
+     * @throws GeneralSecurityException if the key can't be loaded or used
+     */
+    static PanTokenizer fromKeyStore(File keyStoreFile, String keyStoreType,
+            char[] storePassword, String alias, char[] keyPassword,
+            int cacheSize, long cacheTtlMillis)
+            throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(keyStoreType);
+        InputStream in = new FileInputStream(keyStoreFile);
+        try {
+            keyStore.load(in, storePassword);
+        } finally {
+            in.close();
+        }
+        Key key = keyStore.getKey(alias, keyPassword);
+        if (key == null) {
+            throw new UnrecoverableKeyException(
+                    "No key with alias " + alias + " in " + keyStoreFile);
+        }
+        return new PanTokenizer(key, cacheSize, cacheTtlMillis);
+    }
+
+    /**
+     * Get the token for the given card number.
+     *
+     * @param cardNumber the number to tokenize. It must only contain numeric
+     *      characters
+     * @return the token string
+     */
+    String token(String cardNumber) {
+        final int length = cardNumber.length();
+        if (length > MAX_CACHEABLE_DIGITS) {
+            return computeToken(cardNumber);
+        }
+
+        final long packed = pack(cardNumber);
+        String token = cache.get(packed, length);
+        if (token == null) {
+            token = computeToken(cardNumber);
+            cache.put(packed, length, token);
+        }
+        return token;
+    }
+
+    long getCacheHits() {
+        return cache.hits;
+    }
+
+    long getCacheMisses() {
+        return cache.misses;
+    }
+
+    /**
+     * @return fraction of lookups served from the cache, or `0` if there
+     *      were no lookups yet
+     */
+    double getCacheHitRate() {
+        long hits = cache.hits;
+        long lookups = hits + cache.misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    int getCacheSize() {
+        return cache.size();
+    }
+
+    /**
+     * Drop all cached tokens and stop the cache's purge timer. Tokens
+     * computed after this are not cached.
+     */
+    void close() {
+        cache.close();
+    }
+
+    private String computeToken(String cardNumber) {
+        final int length = cardNumber.length();
+        final byte[] digits = new byte[length];
+        for (int i = 0; i < length; i++) {
+            digits[i] = (byte) cardNumber.charAt(i);
+        }
+
+        final byte[] mac;
+        try {
+            mac = macs.get().doFinal(digits);
+        } finally {
+            Arrays.fill(digits, (byte) 0);
+        }
+
+        StringBuilder token = new StringBuilder(TOKEN_PREFIX.length()
+                + TOKEN_BYTES * 2 + TOKEN_SUFFIX.length());
+        token.append(TOKEN_PREFIX);
+        for (int i = 0; i < TOKEN_BYTES; i++) {
+            token.append(HEX[(mac[i] >> 4) & 0xf]);
+            token.append(HEX[mac[i] & 0xf]);
+        }
+        token.append(TOKEN_SUFFIX);
+        return token.toString();
+    }
+
+    /**
+     * Pack up to 19 decimal digits into a `long`. The result is treated as
+     * unsigned, which is enough for any 19 digit number.
+     */
+    private static long pack(String cardNumber) {
+        long packed = 0;
+        for (int i = 0; i < cardNumber.length(); i++) {
+            packed = packed * 10 + (cardNumber.charAt(i) - '0');
+        }
+        return packed;
+    }
+
+    private static Mac newMac(Key key) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+        mac.init(key);
+        return mac;
+    }
+
+    /**
+     * Bounded FIFO cache of tokens with a fixed time to live. Since every
+     * entry lives for the same time, the eldest entry is always the first to
+     * expire and expired entries can be purged from the head of the map.
+     * Purging happens on every access and, so that entries don't outlive
+     * their time when logging goes quiet, periodically on a timer thread.
+     */
+    private static final class TokenCache {
+
+        private final long ttlNanos;
+        private final LinkedHashMap<CacheKey, CachedToken> entries;
+        private final CacheKey probe = new CacheKey();
+        private final Timer purger;
+        private boolean closed;
+
+        private volatile long hits;
+        private volatile long misses;
+
+        TokenCache(final int maxSize, long ttlMillis) {
+            this.ttlNanos = ttlMillis * 1000000L;
+            this.entries = new LinkedHashMap<CacheKey, CachedToken>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<CacheKey, CachedToken> eldest) {
+                    return size() > maxSize;
+                }
+            };
+            this.closed = maxSize <= 0 || ttlMillis <= 0;
+            if (closed) {
+                this.purger = null;
+            } else {
+                final long period = Math.max(ttlMillis / 4, 1);
+                this.purger = new Timer("luhn-token-cache-purger", true);
+                this.purger.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        purgeExpired();
+                    }
+                }, period, period);
+            }
+        }
+
+        synchronized String get(long packed, int length) {
+            purgeExpired();
+            probe.packed = packed;
+            probe.length = length;
+            CachedToken entry = entries.get(probe);
+            probe.packed = 0;
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return entry.token;
+        }
+
+        synchronized void put(long packed, int length, String token) {
+            if (closed) {
+                return;
+            }
+            purgeExpired();
+            CacheKey key = new CacheKey();
+            key.packed = packed;
+            key.length = length;
+            // remove first so a re-added key moves to the tail and the map
+            // stays in expiry order
+            entries.remove(key);
+            entries.put(key, new CachedToken(token, System.nanoTime() + ttlNanos));
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized void close() {
+            closed = true;
+            if (purger != null) {
+                purger.cancel();
+            }
+            entries.clear();
+        }
+
+        private synchronized void purgeExpired() {
+            final long now = System.nanoTime();
+            Iterator<CachedToken> it = entries.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().expiresAt - now > 0) {
+                    return;
+                }
+                it.remove();
+            }
+        }
+    }
+
+    private static final class CacheKey {
+
+        long packed;
+        int length;
+
+        @Override
+        public int hashCode() {
+            return (int) (packed ^ (packed >>> 32)) * 31 + length;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) obj;
+            return packed == other.packed && length == other.length;
+        }
+    }
+
+    private static final class CachedToken {
+
+        final String token;
+        final long expiresAt;
+
+        CachedToken(String token, long expiresAt) {
+            this.token = token;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 samson.ph.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ph.samson.logback.luhn;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.Charset;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static ph.samson.logback.luhn.LuhnByteBufferMasker.*;
+
+public class LuhnByteBufferMaskerTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] MESSAGES = {
+        "",
+        "no numbers",
+        "try 5137 0049 8639 6404 and 5137 0049 8639 6403",
+        "5137 0049 8639 6403 and 5137 0049 8639 6404",
+        "try 5137 0049 8639 6403 multiple 5137 0049 8639 6404 possible 4111-1111-1111 1111 card 4111111111111112 numbers",
+        "trailing 4111-1111-1111-1111 -",
+        "4222222222222",
+        "caf\u00e9 \u30ab\u30fc\u30c9 5137004986396403 \u00fcber"
+    };
+
+    private static ByteBuffer direct(String msg) {
+        byte[] bytes = msg.getBytes(UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static String decode(ByteBuffer buffer) {
+        return UTF_8.decode(buffer.duplicate()).toString();
+    }
+
+    /**
+     * Masking bytes gives the same result as masking the decoded string.
+     */
+    @Test
+    public void testMaskInPlaceSameAsMask() {
+        for (String msg : MESSAGES) {
+            ByteBuffer heap = ByteBuffer.wrap(msg.getBytes(UTF_8));
+            maskInPlace(heap);
+            assertEquals(LuhnMaskingConverter.mask(msg), decode(heap));
+
+            ByteBuffer direct = direct(msg);
+            maskInPlace(direct);
+            assertEquals(LuhnMaskingConverter.mask(msg), decode(direct));
+        }
+    }
+
+    @Test
+    public void testMaskInPlaceCount() {
+        ByteBuffer buffer = direct(MESSAGES[4]);
+        assertEquals(2, maskInPlace(buffer));
+        assertEquals(0, buffer.position());
+        assertEquals(MESSAGES[4].length(), buffer.limit());
+        assertEquals(0, maskInPlace(direct(MESSAGES[1])));
+    }
+
+    /**
+     * Only the given range is scanned.
+     */
+    @Test
+    public void testMaskInPlaceRange() {
+        String msg = "5137004986396403 and 5137004986396403";
+        ByteBuffer buffer = direct(msg);
+        assertEquals(1, maskInPlace(buffer, 17, buffer.limit()));
+        assertEquals("5137004986396403 and ***MASKED***6403", decode(buffer));
+
+        // digits outside the range are not seen, so the range can hold a
+        // card number that the whole message doesn't: 14222222222222 fails
+        // the Luhn check but 4222222222222 passes it
+        msg = "ref 14222222222222 end";
+        buffer = direct(msg);
+        assertEquals(0, maskInPlace(buffer));
+        assertEquals(msg, decode(buffer));
+        assertEquals(1, maskInPlace(buffer, 5, buffer.limit()));
+        assertEquals("ref 1" + MaskTables.mask(9) + "2222 end", decode(buffer));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testMaskInPlaceBadRange() {
+        maskInPlace(direct("5137004986396403"), 0, 17);
+    }
+
+    @Test(expected = ReadOnlyBufferException.class)
+    public void testMaskInPlaceReadOnly() {
+        maskInPlace(direct("5137004986396403").asReadOnlyBuffer());
+    }
+
+    @Test
+    public void testMask() {
+        for (String msg : MESSAGES) {
+            ByteBuffer src = direct(msg).asReadOnlyBuffer();
+            ByteBuffer dst = ByteBuffer.allocateDirect(src.remaining() + 8);
+            dst.position(4);
+            mask(src, dst);
+            assertFalse(src.hasRemaining());
+            assertEquals(4 + src.limit(), dst.position());
+
+            src.rewind();
+            assertEquals(msg, decode(src));
+            dst.flip();
+            dst.position(4);
+            assertEquals(LuhnMaskingConverter.mask(msg), decode(dst));
+        }
+    }
+
+    @Test
+    public void testMaskOverflow() {
+        ByteBuffer src = direct("5137004986396403");
+        ByteBuffer dst = ByteBuffer.allocate(src.remaining() - 1);
+        try {
+            mask(src, dst);
+            fail();
+        } catch (BufferOverflowException ex) {
+            assertEquals(0, src.position());
+            assertEquals(0, dst.position());
+        }
+    }
+}
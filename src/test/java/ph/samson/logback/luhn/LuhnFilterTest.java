@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 samson.ph.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ph.samson.logback.luhn;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.spi.FilterReply;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class LuhnFilterTest {
+
+    private static ILoggingEvent event(String msg) {
+        ILoggingEvent e = mock(ILoggingEvent.class);
+        when(e.getFormattedMessage()).thenReturn(msg);
+        return e;
+    }
+
+    private static LuhnFilter filter(FilterReply onMatch, FilterReply onMismatch) {
+        LuhnFilter filter = new LuhnFilter();
+        filter.setOnMatch(onMatch);
+        filter.setOnMismatch(onMismatch);
+        filter.start();
+        return filter;
+    }
+
+    @Test
+    public void testNotStarted() {
+        LuhnFilter filter = new LuhnFilter();
+        filter.setOnMatch(FilterReply.DENY);
+        assertEquals(FilterReply.NEUTRAL, filter.decide(event("card 5137 0049 8639 6403")));
+    }
+
+    @Test
+    public void testMatch() {
+        LuhnFilter filter = filter(FilterReply.ACCEPT, FilterReply.DENY);
+        assertEquals(FilterReply.ACCEPT, filter.decide(event("card 5137 0049 8639 6403")));
+        assertEquals(FilterReply.DENY, filter.decide(event("card 5137 0049 8639 6404")));
+        assertEquals(FilterReply.DENY, filter.decide(event("no card")));
+        assertEquals(FilterReply.DENY, filter.decide(event(null)));
+        assertEquals(1, filter.getMatchCount());
+    }
+
+    @Test
+    public void testMatchUnicodeDigits() {
+        LuhnFilter filter = filter(FilterReply.DENY, FilterReply.NEUTRAL);
+        String msg = "card \uff15\uff11\uff13\uff17\uff10\uff10\uff14\uff19\uff18\uff16\uff13\uff19\uff16\uff14\uff10\uff13";
+        assertEquals(FilterReply.NEUTRAL, filter.decide(event(msg)));
+        filter.setUnicodeDigits(true);
+        assertEquals(FilterReply.DENY, filter.decide(event(msg)));
+    }
+
+    /**
+     * The converter returns a message the filter found clean without
+     * scanning it again, and masks one the filter matched from its first
+     * card number.
+     */
+    @Test
+    public void testScanSharedWithConverter() {
+        LuhnFilter filter = filter(FilterReply.ACCEPT, FilterReply.DENY);
+        LuhnMaskingConverter converter = new LuhnMaskingConverter();
+        converter.start();
+
+        String clean = "card 5137 0049 8639 6404";
+        assertEquals(FilterReply.DENY, filter.decide(event(clean)));
+        assertEquals(LastScan.CLEAN, LastScan.take(clean, false));
+        assertEquals("record is cleared when read",
+                LastScan.UNSCANNED, LastScan.take(clean, false));
+
+        assertEquals(FilterReply.DENY, filter.decide(event(clean)));
+        assertEquals("scanned without Unicode digits",
+                LastScan.UNSCANNED, LastScan.take(clean, true));
+
+        assertEquals(FilterReply.DENY, filter.decide(event(clean)));
+        assertEquals("equal but different message",
+                LastScan.UNSCANNED, LastScan.take(new String(clean), false));
+
+        ILoggingEvent e = event("card 5137 0049 8639 6404 or 5137 0049 8639 6403");
+        assertEquals(FilterReply.ACCEPT, filter.decide(e));
+        assertEquals(28, LastScan.take(e.getFormattedMessage(), false));
+        assertEquals(FilterReply.ACCEPT, filter.decide(e));
+        assertEquals("card 5137 0049 8639 6404 or ****MASKED*****6403", converter.convert(e));
+
+        e = event(clean);
+        assertEquals(FilterReply.DENY, filter.decide(e));
+        assertSame(clean, converter.convert(e));
+    }
+}
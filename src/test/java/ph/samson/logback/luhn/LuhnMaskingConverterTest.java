@@ -16,13 +16,27 @@
 package ph.samson.logback.luhn;
 
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.ContextBase;
+import ch.qos.logback.core.status.Status;
+import ch.qos.logback.core.status.StatusUtil;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 import static ph.samson.logback.luhn.LuhnMaskingConverter.*;
 
 public class LuhnMaskingConverterTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testHasEnoughDigitsFormattedMessageNull() {
         assertEquals(false, hasEnoughDigits(null));
@@ -259,4 +273,346 @@ public class LuhnMaskingConverterTest {
                 + "6331101999990017",
                 converter.convert(e));
     }
+
+    @Test
+    public void testMaskTokenized() throws Exception {
+        PanTokenizer tokenizer = new PanTokenizer(new SecretKeySpec(
+                "0123456789abcdef".getBytes(), PanTokenizer.HMAC_ALGORITHM), 16, 60000);
+        try {
+            String token = tokenizer.token("5137004986396403");
+            assertEquals("try 5137 0049 8639 6404 and " + token + "6403 and " + token + "6403",
+                    mask("try 5137 0049 8639 6404 and 5137 0049 8639 6403 and 5137004986396403", false, tokenizer));
+        } finally {
+            tokenizer.close();
+        }
+    }
+
+    @Test
+    public void testConvertTokenized() throws Exception {
+        String keyStore = PanTokenizerTest.writeKeyStore(folder, "secret").getPath();
+
+        LuhnMaskingConverter converter = new LuhnMaskingConverter();
+        converter.setOptionList(Arrays.asList(
+                "keyStore=" + keyStore, "storePassword=secret", "keyAlias=pan-token"));
+        converter.start();
+
+        try {
+            ILoggingEvent e = mock(ILoggingEvent.class);
+            when(e.getFormattedMessage()).thenReturn("card 5137 0049 8639 6403 again 5137-0049-8639-6403");
+            String converted = converter.convert(e);
+            assertTrue(converted, converted.matches(
+                    "card (\\[PAN:[0-9a-f]{16}\\])6403 again \\16403"));
+            assertEquals(1, converter.getTokenCacheHits());
+            assertEquals(1, converter.getTokenCacheMisses());
+            assertEquals(0.5, converter.getTokenCacheHitRate(), 0);
+        } finally {
+            converter.stop();
+        }
+    }
+
+    /**
+     * A key store without a key alias is reported and falls back to masking.
+     */
+    @Test
+    public void testConvertTokenizedNoKeyAlias() throws Exception {
+        String keyStore = PanTokenizerTest.writeKeyStore(folder, "secret").getPath();
+
+        ContextBase context = new ContextBase();
+        LuhnMaskingConverter converter = new LuhnMaskingConverter();
+        converter.setContext(context);
+        converter.setOptionList(Arrays.asList("keyStore=" + keyStore, "storePassword=secret"));
+        converter.start();
+
+        assertTrue(new StatusUtil(context).containsMatch(Status.ERROR, ".*keyAlias"));
+        ILoggingEvent e = mock(ILoggingEvent.class);
+        when(e.getFormattedMessage()).thenReturn("card 5137 0049 8639 6403");
+        assertEquals("card ****MASKED*****6403", converter.convert(e));
+    }
+
+    /**
+     * A key store that can't be loaded falls back to masking.
+     */
+    @Test
+    public void testConvertTokenizedBadKeyStore() {
+        LuhnMaskingConverter converter = new LuhnMaskingConverter();
+        converter.setContext(new ContextBase());
+        converter.setOptionList(Arrays.asList(
+                "keyStore=" + new File(folder.getRoot(), "missing.p12"),
+                "storePassword=secret", "keyAlias=pan-token"));
+        converter.start();
+
+        ILoggingEvent e = mock(ILoggingEvent.class);
+        when(e.getFormattedMessage()).thenReturn("card 5137 0049 8639 6403");
+        assertEquals("card ****MASKED*****6403", converter.convert(e));
+    }
+
+    /**
+     * Non-ASCII characters are only normalized when Unicode digits are
+     * enabled, and then only if they are digits.
+     */
+    @Test
+    public void testStripSeparatorsNonAsciiKept() {
+        String msg = "a\u20acb";
+        assertSame(msg, stripSeparators(msg, false));
+        assertSame(msg, stripSeparators(msg, true));
+        assertEquals("\uff141", stripSeparators("\uff14 1", false));
+        assertEquals("4\u20ac1\ud83d\ude001", stripSeparators("\uff14\u20ac 1\ud83d\ude00\ud835\udfd9", true));
+    }
+
+    @Test
+    public void testStripSeparatorsUnicode() {
+        assertEquals("5137004986396403", stripSeparators("\uff15\uff11\uff13\uff17\u3000\uff10\uff10\uff14\uff19\u2010\uff18\uff16\uff13\uff19 6403", true));
+    }
+
+    /**
+     * Unicode digits are left alone unless enabled.
+     */
+    @Test
+    public void testMaskFullWidthDigitsDisabled() {
+        String msg = "card \uff15\uff11\uff13\uff17\uff10\uff10\uff14\uff19\uff18\uff16\uff13\uff19\uff16\uff14\uff10\uff13";
+        assertEquals(msg, mask(msg));
+    }
+
+    @Test
+    public void testMaskFullWidthDigits() {
+        String msg = "card \uff15\uff11\uff13\uff17\u3000\uff10\uff10\uff14\uff19\u3000\uff18\uff16\uff13\uff19\u3000\uff16\uff14\uff10\uff13 end";
+        assertEquals("card ****MASKED*****\uff16\uff14\uff10\uff13 end", mask(msg, true, null));
+    }
+
+    @Test
+    public void testMaskArabicIndicDigits() {
+        String msg = "\u0665\u0661\u0663\u0667-\u0660\u0660\u0664\u0669-\u0668\u0666\u0663\u0669-\u0666\u0664\u0660\u0663";
+        assertEquals("****MASKED*****\u0666\u0664\u0660\u0663", mask(msg, true, null));
+        String notCard = "\u0665\u0661\u0663\u0667-\u0660\u0660\u0664\u0669-\u0668\u0666\u0663\u0669-\u0666\u0664\u0660\u0664";
+        assertEquals(notCard, mask(notCard, true, null));
+    }
+
+    /**
+     * Unicode card numbers get the same token as their ASCII equivalent.
+     */
+    @Test
+    public void testMaskTokenizedUnicodeDigits() throws Exception {
+        PanTokenizer tokenizer = new PanTokenizer(new SecretKeySpec(
+                "0123456789abcdef".getBytes(), PanTokenizer.HMAC_ALGORITHM), 16, 60000);
+        try {
+            String token = tokenizer.token("5137004986396403");
+            assertEquals(token + "\uff16\uff14\uff10\uff13", mask(
+                    "\uff15\uff11\uff13\uff17\uff10\uff10\uff14\uff19\uff18\uff16\uff13\uff19\uff16\uff14\uff10\uff13",
+                    true, tokenizer));
+        } finally {
+            tokenizer.close();
+        }
+    }
+
+    @Test
+    public void testFindCardNumber() {
+        assertEquals(5, findCardNumber("card 5137 0049 8639 6403", false));
+        assertEquals(0, findCardNumber("5137-0049-8639-6403 and 5137004986396404", false));
+        assertEquals(21, findCardNumber("5137004986396404 and 5137004986396403", false));
+        assertEquals(-1, findCardNumber("card 5137 0049 8639 6404", false));
+        assertEquals(-1, findCardNumber("no card", false));
+        assertEquals(-1, findCardNumber(null, false));
+
+        String fullWidth = "\uff15\uff11\uff13\uff17\uff10\uff10\uff14\uff19\uff18\uff16\uff13\uff19\uff16\uff14\uff10\uff13";
+        assertEquals(-1, findCardNumber(fullWidth, false));
+        assertEquals(0, findCardNumber(fullWidth, true));
+        assertEquals(2, findCardNumber("x " + digits("5137 0049 8639 6403", 0x1D7CE), true));
+        assertEquals(-1, findCardNumber(digits("5137 0049 8639 6404", 0x1D7CE), true));
+    }
+
+    /**
+     * Masking from the first card number gives the same result as masking
+     * the whole message.
+     */
+    @Test
+    public void testMaskFromCardNumber() {
+        String[] messages = {
+            "5137 0049 8639 6404 and 5137-0049-8639-6403 and 4111111111111111 end",
+            "card 5137004986396403",
+            "x " + digits("5137 0049 8639 6403", 0x1D7CE) + " y 4111111111111111"
+        };
+        for (String msg : messages) {
+            int cardStart = findCardNumber(msg, true);
+            assertEquals(mask(msg, true, null), mask(msg, cardStart, true, null, null));
+        }
+    }
+
+    @Test
+    public void testLuhnCheckRange() {
+        String msg = "card 5137 0049-8639 6403 end";
+        assertTrue(luhnCheck(msg, 5, 24, false));
+        assertFalse(luhnCheck(msg, 6, 24, false));
+        String bold = digits("5137 0049 8639 6403", 0x1D7CE);
+        assertTrue(luhnCheck(bold, 0, bold.length(), true));
+    }
+
+    /**
+     * Digits outside the Basic Multilingual Plane are surrogate pairs.
+     */
+    @Test
+    public void testMaskSupplementaryDigits() {
+        String bold = digits("5137 0049 8639 6403", 0x1D7CE);
+        String osmanya = digits("5137-0049-8639-6403", 0x104A0);
+        assertEquals(bold, mask(bold));
+        assertEquals("card " + maskString(bold, digits("6403", 0x1D7CE)) + digits("6403", 0x1D7CE) + " end",
+                mask("card " + bold + " end", true, null));
+        assertEquals(maskString(osmanya, digits("6403", 0x104A0)) + digits("6403", 0x104A0),
+                mask(osmanya, true, null));
+        assertEquals("5137004986396403", stripSeparators(bold, true));
+
+        String notCard = digits("5137 0049 8639 6404", 0x1D7CE);
+        assertEquals(notCard, mask(notCard, true, null));
+    }
+
+    /**
+     * Write the ASCII digits of `ascii` with the digits starting at code
+     * point `zero`, leaving other characters as they are.
+     */
+    private static String digits(String ascii, int zero) {
+        StringBuilder result = new StringBuilder();
+        for (char c : ascii.toCharArray()) {
+            if (c >= '0' && c <= '9') {
+                result.appendCodePoint(zero + c - '0');
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    @Test
+    public void testConvertUnicodeDigitsOption() {
+        LuhnMaskingConverter converter = new LuhnMaskingConverter();
+        converter.setOptionList(Arrays.asList("unicodeDigits=true"));
+        converter.start();
+
+        ILoggingEvent e = mock(ILoggingEvent.class);
+        when(e.getFormattedMessage()).thenReturn("card \uff15\uff11\uff13\uff17\uff10\uff10\uff14\uff19\uff18\uff16\uff13\uff19\uff16\uff14\uff10\uff13");
+        assertEquals("card ***MASKED***\uff16\uff14\uff10\uff13", converter.convert(e));
+    }
+
+    @Test
+    public void testMaskBatch() {
+        String[] messages = {
+            "try 5137 0049 8639 6404 and 5137 0049 8639 6403",
+            null,
+            "",
+            "no numbers",
+            "5137 0049 8639 6403 and 5137 0049 8639 6404"
+        };
+        String[] masked = new String[messages.length];
+        LuhnMaskingConverter converter = new LuhnMaskingConverter();
+        converter.start();
+        converter.maskBatch(messages, masked);
+        assertArrayEquals(new String[]{
+            "try 5137 0049 8639 6404 and ****MASKED*****6403",
+            null,
+            "",
+            "no numbers",
+            "****MASKED*****6403 and 5137 0049 8639 6404"
+        }, masked);
+        assertEquals(1, converter.getBatchCount());
+        assertEquals(messages.length, converter.getBatchMessageCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaskBatchOutputTooShort() {
+        new LuhnMaskingConverter().maskBatch(new String[2], new String[1]);
+    }
+
+    @Test
+    public void testMaskBatchList() {
+        List<String> masked = new ArrayList<String>();
+        masked.add("left over from the last batch");
+        LuhnMaskingConverter converter = new LuhnMaskingConverter();
+        converter.start();
+        converter.maskBatch(Arrays.asList("card 4111-1111-1111 1111", "card 4111111111111112"), masked);
+        assertEquals(Arrays.asList("card ****MASKED*****1111", "card 4111111111111112"), masked);
+
+        List<String> inPlace = new ArrayList<String>(Arrays.asList("card 4111-1111-1111 1111", null));
+        converter.maskBatch(inPlace, inPlace);
+        assertEquals(Arrays.asList("card ****MASKED*****1111", null), inPlace);
+
+        LinkedList<String> linked = new LinkedList<String>(Arrays.asList("card 4111111111111111"));
+        converter.maskBatch(linked, linked);
+        assertEquals(Arrays.asList("card ***MASKED***1111"), linked);
+    }
+
+    /**
+     * An output list of the right size is written by index, so it can be
+     * fixed-size.
+     */
+    @Test
+    public void testMaskBatchFixedSizeList() {
+        LuhnMaskingConverter converter = new LuhnMaskingConverter();
+        converter.start();
+        List<String> messages = Arrays.asList("card 4111-1111-1111 1111", "card 4111111111111112");
+
+        List<String> masked = Arrays.asList(new String[2]);
+        converter.maskBatch(messages, masked);
+        assertEquals(Arrays.asList("card ****MASKED*****1111", "card 4111111111111112"), masked);
+
+        masked = Arrays.asList(new String[2]);
+        converter.maskBatch(new LinkedList<String>(messages), masked);
+        assertEquals(Arrays.asList("card ****MASKED*****1111", "card 4111111111111112"), masked);
+    }
+
+    /**
+     * Large batches masked in parallel give the same results as masking each
+     * message on its own.
+     */
+    @Test
+    public void testMaskBatchParallel() {
+        String[] messages = new String[BatchMasker.PARALLEL_THRESHOLD * 3 + 1];
+        StringBuilder msg = new StringBuilder();
+        for (int i = 0; i < messages.length; i++) {
+            msg.append(i % 3 == 0 ? " 5137 0049 8639 6403" : i % 3 == 1 ? " x" : " 5137 0049 8639 6404");
+            messages[i] = msg.substring(0, (i * 7919) % msg.length());
+        }
+
+        LuhnMaskingConverter converter = new LuhnMaskingConverter();
+        converter.setOptionList(Arrays.asList("batchParallelism=4"));
+        converter.start();
+        String[] masked = new String[messages.length];
+        converter.maskBatch(messages, masked);
+        converter.maskBatch(messages, masked);
+        converter.stop();
+
+        for (int i = 0; i < messages.length; i++) {
+            assertEquals(mask(messages[i]), masked[i]);
+        }
+        assertEquals(2, converter.getBatchCount());
+        assertEquals(messages.length * 2, converter.getBatchMessageCount());
+        assertTrue(converter.getBatchNanos() > 0);
+        assertTrue(converter.getLastBatchThroughput() > 0);
+    }
+
+    /**
+     * An interrupted caller still gets the whole batch masked once, and keeps
+     * its interrupt status.
+     */
+    @Test
+    public void testMaskBatchParallelInterrupted() {
+        String[] messages = new String[BatchMasker.PARALLEL_THRESHOLD * 2];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = i % 2 == 0 ? "card 5137 0049 8639 6403" : "card " + i;
+        }
+
+        LuhnMaskingConverter converter = new LuhnMaskingConverter();
+        converter.setOptionList(Arrays.asList("batchParallelism=4"));
+        converter.start();
+        String[] masked = new String[messages.length];
+        Thread.currentThread().interrupt();
+        try {
+            converter.maskBatch(messages, masked);
+        } finally {
+            assertTrue(Thread.interrupted());
+            converter.stop();
+        }
+
+        for (int i = 0; i < messages.length; i++) {
+            assertEquals(mask(messages[i]), masked[i]);
+        }
+        assertEquals(1, converter.getBatchCount());
+    }
 }
@@ -22,6 +22,9 @@ import ch.qos.logback.classic.spi.LoggerContextVO;
 import com.google.caliper.Benchmark;
 import com.google.caliper.Param;
 import com.google.caliper.runner.CaliperMain;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import org.slf4j.Marker;
@@ -144,6 +147,10 @@ public class MaskingBenchmark extends Benchmark {
                     + "5019717010103742"
                     + "Switch/Solo (Paymentech)"
                     + "6331101999990016");
+            put("j. Full-width credit card number", "Full-width "
+                    + "\uff14\uff11\uff11\uff11 \uff11\uff11\uff11\uff11 "
+                    + "\uff11\uff11\uff11\uff11 \uff11\uff11\uff11\uff11"
+                    + " credit card number");
         }
     };
 
@@ -156,6 +163,7 @@ public class MaskingBenchmark extends Benchmark {
         "g. Lots of short numbers",
         "h. Lots of non credit card numbers",
         "i. Lots of credit card numbers",
+        "j. Full-width credit card number",
     })
     String test;
 
@@ -169,10 +177,226 @@ public class MaskingBenchmark extends Benchmark {
         }
     }
 
+    /**
+     * Same as `timeConvertMasked` but with Unicode digits enabled. ASCII
+     * messages should take the same time as with `timeConvertMasked`.
+     */
+    public void timeConvertMaskedUnicodeDigits(long reps) {
+        LuhnMaskingConverter converter = new LuhnMaskingConverter();
+        converter.setOptionList(Arrays.asList("unicodeDigits=true"));
+        converter.start();
+        String msg = tests.get(test);
+
+        ILoggingEvent event = new DummyEvent(msg);
+        for (int i = 0; i < reps; i++) {
+            converter.convert(event);
+        }
+    }
+
+    /**
+     * Filter and then format an event, as an appender with a `LuhnFilter`
+     * and a `LuhnMaskingConverter` does.
+     */
+    public void timeFilterThenConvert(long reps) {
+        LuhnFilter filter = new LuhnFilter();
+        filter.start();
+        LuhnMaskingConverter converter = new LuhnMaskingConverter();
+        String msg = tests.get(test);
+
+        ILoggingEvent event = new DummyEvent(msg);
+        for (int i = 0; i < reps; i++) {
+            filter.decide(event);
+            converter.convert(event);
+        }
+    }
+
+    /**
+     * Baseline for `timeFilterThenConvert`: check for a card number and then
+     * mask, as two separate scans.
+     */
+    public void timeCheckThenMask(long reps) {
+        String msg = tests.get(test);
+        for (int i = 0; i < reps; i++) {
+            LuhnMaskingConverter.findCardNumber(msg, false);
+            LuhnMaskingConverter.mask(msg);
+        }
+    }
+
+    public void timeMask(long reps) {
+        String msg = tests.get(test);
+        for (int i = 0; i < reps; i++) {
+            LuhnMaskingConverter.mask(msg);
+        }
+    }
+
+    public void timeMaskUnicodeDigits(long reps) {
+        String msg = tests.get(test);
+        for (int i = 0; i < reps; i++) {
+            LuhnMaskingConverter.mask(msg, true, null);
+        }
+    }
+
+    /**
+     * Baseline for `timeMask` and `timeMaskUnicodeDigits`: masking as it was
+     * before Unicode digit support, with `isDigit` as a `switch`.
+     */
+    public void timeMaskSwitchBaseline(long reps) {
+        String msg = tests.get(test);
+        for (int i = 0; i < reps; i++) {
+            SwitchBaseline.mask(msg);
+        }
+    }
+
+    /**
+     * Mask the UTF-8 encoded message held in a direct buffer into another
+     * direct buffer, without decoding it.
+     */
+    public void timeMaskDirectByteBuffer(long reps) {
+        ByteBuffer src = directBuffer(tests.get(test));
+        ByteBuffer dst = ByteBuffer.allocateDirect(src.capacity());
+        for (int i = 0; i < reps; i++) {
+            src.rewind();
+            dst.clear();
+            LuhnByteBufferMasker.mask(src, dst);
+        }
+    }
+
+    /**
+     * Baseline for `timeMaskDirectByteBuffer`: decode the direct buffer into a
+     * `String`, mask it and encode the result into another direct buffer.
+     */
+    public void timeDecodeThenMaskDirectByteBuffer(long reps) {
+        Charset utf8 = Charset.forName("UTF-8");
+        ByteBuffer src = directBuffer(tests.get(test));
+        ByteBuffer dst = ByteBuffer.allocateDirect(src.capacity());
+        for (int i = 0; i < reps; i++) {
+            src.rewind();
+            dst.clear();
+            dst.put(utf8.encode(LuhnMaskingConverter.mask(utf8.decode(src).toString())));
+        }
+    }
+
+    private static ByteBuffer directBuffer(String msg) {
+        byte[] bytes = msg.getBytes(Charset.forName("UTF-8"));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+
     public static void main(String[] args) {
         CaliperMain.main(MaskingBenchmark.class, args);
     }
 
+    /**
+     * Masking with ASCII digits recognized by a `switch`, as it was before
+     * Unicode digit support.
+     */
+    static class SwitchBaseline {
+
+        static String mask(String formattedMessage) {
+            if (!hasEnoughDigits(formattedMessage)) {
+                return formattedMessage;
+            }
+
+            int length = formattedMessage.length();
+            int unwrittenStart = 0;
+            int numberStart = -1;
+            int numberEnd;
+            int digitsSeen = 0;
+            int[] last4pos = {-1, -1, -1, -1};
+            int pos;
+            char current;
+
+            StringBuilder masked = new StringBuilder(formattedMessage.length());
+
+            for (pos = 0; pos < length; pos++) {
+                current = formattedMessage.charAt(pos);
+                if (isDigit(current)) {
+                    digitsSeen++;
+
+                    if (numberStart == -1) {
+                        numberStart = pos;
+                    }
+
+                    last4pos[0] = last4pos[1];
+                    last4pos[1] = last4pos[2];
+                    last4pos[2] = last4pos[3];
+                    last4pos[3] = pos;
+                } else if (digitsSeen > 0 && current != ' ' && current != '-') {
+                    numberEnd = last4pos[3] + 1;
+                    if ((digitsSeen >= 13)
+                            && LuhnMaskingConverter.luhnCheck(LuhnMaskingConverter.stripSeparators(
+                                            formattedMessage.substring(numberStart, numberEnd)))) {
+                        masked.append(formattedMessage, unwrittenStart, numberStart);
+                        masked.append(LuhnMaskingConverter.maskString(
+                                formattedMessage.substring(numberStart, numberEnd),
+                                formattedMessage.substring(last4pos[0], numberEnd)));
+                        masked.append(formattedMessage, last4pos[0], numberEnd);
+                        unwrittenStart = numberEnd;
+                    }
+                    numberStart = -1;
+                    digitsSeen = 0;
+                }
+            }
+
+            if (numberStart != -1 && (digitsSeen >= 13)
+                    && LuhnMaskingConverter.luhnCheck(LuhnMaskingConverter.stripSeparators(
+                                    formattedMessage.substring(numberStart, pos)))) {
+                masked.append(formattedMessage, unwrittenStart, numberStart);
+                masked.append(LuhnMaskingConverter.maskString(
+                        formattedMessage.substring(numberStart, pos),
+                        formattedMessage.substring(last4pos[0], pos)));
+                masked.append(formattedMessage, last4pos[0], pos);
+            } else {
+                masked.append(formattedMessage, unwrittenStart, pos);
+            }
+
+            return masked.toString();
+        }
+
+        static boolean hasEnoughDigits(String formattedMessage) {
+            if (formattedMessage == null) {
+                return false;
+            }
+
+            int digits = 0;
+            int length = formattedMessage.length();
+            char current;
+
+            for (int i = 0; i < length; i++) {
+                current = formattedMessage.charAt(i);
+                if (isDigit(current)) {
+                    if (++digits == 13) {
+                        return true;
+                    }
+                } else if (digits > 0 && current != ' ' && current != '-') {
+                    digits = 0;
+                }
+            }
+
+            return false;
+        }
+
+        private static boolean isDigit(char c) {
+            switch (c) {
+                case '0':
+                case '1':
+                case '2':
+                case '3':
+                case '4':
+                case '5':
+                case '6':
+                case '7':
+                case '8':
+                case '9':
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
     static class DummyEvent implements ILoggingEvent {
 
         final String msg;
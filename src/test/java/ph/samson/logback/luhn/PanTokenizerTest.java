@@ -0,0 +1,174 @@
+/*
+ * Copyright 2013 samson.ph.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ph.samson.logback.luhn;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class PanTokenizerTest {
+
+    private static final SecretKey KEY = new SecretKeySpec(
+            "0123456789abcdef0123456789abcdef".getBytes(), PanTokenizer.HMAC_ALGORITHM);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<PanTokenizer> tokenizers = new ArrayList<PanTokenizer>();
+
+    @After
+    public void closeTokenizers() {
+        for (PanTokenizer tokenizer : tokenizers) {
+            tokenizer.close();
+        }
+    }
+
+    /**
+     * Create a tokenizer that is closed after the test, stopping its purge
+     * timer.
+     */
+    private PanTokenizer tokenizer(SecretKey key, int cacheSize, long cacheTtl)
+            throws GeneralSecurityException {
+        PanTokenizer tokenizer = new PanTokenizer(key, cacheSize, cacheTtl);
+        tokenizers.add(tokenizer);
+        return tokenizer;
+    }
+
+    @Test
+    public void testTokenFormat() throws Exception {
+        PanTokenizer tokenizer = tokenizer(KEY, 16, 60000);
+        String token = tokenizer.token("5137004986396403");
+        assertTrue(token.matches("\\[PAN:[0-9a-f]{16}\\]"));
+    }
+
+    @Test
+    public void testSameNumberSameToken() throws Exception {
+        PanTokenizer tokenizer = tokenizer(KEY, 0, 60000);
+        assertEquals(tokenizer.token("5137004986396403"), tokenizer.token("5137004986396403"));
+        assertFalse(tokenizer.token("5137004986396403").equals(tokenizer.token("4111111111111111")));
+    }
+
+    @Test
+    public void testDifferentKeyDifferentToken() throws Exception {
+        PanTokenizer tokenizer = tokenizer(KEY, 16, 60000);
+        PanTokenizer other = tokenizer(new SecretKeySpec(
+                "fedcba9876543210fedcba9876543210".getBytes(), PanTokenizer.HMAC_ALGORITHM), 16, 60000);
+        assertFalse(tokenizer.token("5137004986396403").equals(other.token("5137004986396403")));
+    }
+
+    /**
+     * Leading zeros are significant even though numbers are cached packed.
+     */
+    @Test
+    public void testLeadingZeros() throws Exception {
+        PanTokenizer tokenizer = tokenizer(KEY, 16, 60000);
+        assertFalse(tokenizer.token("0004222222222222").equals(tokenizer.token("4222222222222")));
+    }
+
+    @Test
+    public void testCacheHits() throws Exception {
+        PanTokenizer tokenizer = tokenizer(KEY, 16, 60000);
+        tokenizer.token("5137004986396403");
+        tokenizer.token("5137004986396403");
+        tokenizer.token("5137004986396403");
+        tokenizer.token("4111111111111111");
+        assertEquals(2, tokenizer.getCacheHits());
+        assertEquals(2, tokenizer.getCacheMisses());
+        assertEquals(0.5, tokenizer.getCacheHitRate(), 0);
+    }
+
+    @Test
+    public void testCacheBounded() throws Exception {
+        PanTokenizer tokenizer = tokenizer(KEY, 1, 60000);
+        tokenizer.token("5137004986396403");
+        tokenizer.token("4111111111111111");
+        tokenizer.token("5137004986396403");
+        assertEquals(0, tokenizer.getCacheHits());
+        assertEquals(3, tokenizer.getCacheMisses());
+    }
+
+    @Test
+    public void testCacheExpiry() throws Exception {
+        PanTokenizer tokenizer = tokenizer(KEY, 16, 1);
+        tokenizer.token("5137004986396403");
+        Thread.sleep(10);
+        tokenizer.token("5137004986396403");
+        assertEquals(0, tokenizer.getCacheHits());
+        assertEquals(2, tokenizer.getCacheMisses());
+    }
+
+    /**
+     * Expired tokens are purged even without further lookups.
+     */
+    @Test
+    public void testCacheExpiryWithoutLookups() throws Exception {
+        PanTokenizer tokenizer = tokenizer(KEY, 16, 20);
+        tokenizer.token("5137004986396403");
+        assertEquals(1, tokenizer.getCacheSize());
+        Thread.sleep(200);
+        assertEquals(0, tokenizer.getCacheSize());
+        tokenizer.close();
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        PanTokenizer tokenizer = tokenizer(KEY, 16, 60000);
+        String token = tokenizer.token("5137004986396403");
+        tokenizer.close();
+        assertEquals(0, tokenizer.getCacheSize());
+        assertEquals(token, tokenizer.token("5137004986396403"));
+        assertEquals(0, tokenizer.getCacheSize());
+    }
+
+    @Test
+    public void testFromKeyStore() throws Exception {
+        File file = writeKeyStore(folder, "secret");
+        PanTokenizer tokenizer = PanTokenizer.fromKeyStore(file, "PKCS12",
+                "secret".toCharArray(), "pan-token", "secret".toCharArray(), 16, 60000);
+        tokenizers.add(tokenizer);
+        assertEquals(tokenizer(KEY, 16, 60000).token("5137004986396403"),
+                tokenizer.token("5137004986396403"));
+    }
+
+    /**
+     * Write a PKCS12 key store holding `KEY` under the alias `pan-token`.
+     */
+    static File writeKeyStore(TemporaryFolder folder, String password) throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, null);
+        keyStore.setEntry("pan-token", new KeyStore.SecretKeyEntry(KEY),
+                new KeyStore.PasswordProtection(password.toCharArray()));
+        File file = folder.newFile("pan-token.p12");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            keyStore.store(out, password.toCharArray());
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
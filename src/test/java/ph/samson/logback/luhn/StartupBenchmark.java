@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013 samson.ph.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ph.samson.logback.luhn;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the time from launching a process to its first masked log message,
+ * the way an application would see it right after startup. The converter is
+ * registered by class name so it is instantiated reflectively, like Logback's
+ * `conversionRule` does.
+ *
+ * Timing from inside `main` would miss the startup of the JVM and the loading
+ * of the classes before it, which is most of what a native image saves. So
+ * this runs in two roles:
+ *
+ * - As the launcher, it notes the wall clock time, starts the measured
+ *   process and waits for it. The measured process is the command given as
+ *   arguments, e.g. a native image built from this class, or by default a
+ *   new JVM running this class.
+ * - As the measured process, it is passed the launch time with
+ *   `--launched-at`, logs its first masked message and reports the time
+ *   since launch, along with the time since entering `main`.
+ *
+ * Run it on the JVM with `mvn -Pstartup-benchmark`, or as a native image with
+ * `mvn -Pnative-startup-benchmark` (needs GraalVM's `native-image` on the
+ * `PATH`).
+ */
+public class StartupBenchmark {
+
+    private static final String LAUNCHED_AT = "--launched-at";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 2 && LAUNCHED_AT.equals(args[0])) {
+            measure(Long.parseLong(args[1]));
+        } else {
+            launch(args);
+        }
+    }
+
+    /**
+     * Start the measured process and wait for it to finish.
+     *
+     * @param command the command to measure, or none to run this class in a
+     *      new JVM
+     */
+    private static void launch(String[] command) throws IOException, InterruptedException {
+        List<String> cmd = new ArrayList<String>();
+        if (command.length == 0) {
+            String javaHome = System.getProperty("java.home");
+            if (javaHome == null) {
+                // a native image has no JVM to start another one with
+                throw new IllegalArgumentException(
+                        "No java.home, give the command to measure");
+            }
+            cmd.add(javaHome + File.separator + "bin" + File.separator + "java");
+            cmd.add("-classpath");
+            cmd.add(System.getProperty("java.class.path"));
+            cmd.add(StartupBenchmark.class.getName());
+        } else {
+            cmd.addAll(Arrays.asList(command));
+        }
+
+        final long launchedAt = System.currentTimeMillis();
+        cmd.add(LAUNCHED_AT);
+        cmd.add(Long.toString(launchedAt));
+        Process process = new ProcessBuilder(cmd).inheritIO().start();
+        int status = process.waitFor();
+        final long exitedAt = System.currentTimeMillis();
+
+        if (status != 0) {
+            throw new IllegalStateException(cmd.get(0) + " exited with " + status);
+        }
+        System.out.println("Time from launch to exit: "
+                + (exitedAt - launchedAt) + " ms");
+    }
+
+    private static void measure(long launchedAt) {
+        final long start = System.nanoTime();
+
+        LoggerContext context = new LoggerContext();
+        PatternLayout layout = new PatternLayout();
+        layout.getInstanceConverterMap().put("maskedMsg",
+                LuhnMaskingConverter.class.getName());
+        layout.setContext(context);
+        layout.setPattern("%maskedMsg");
+        layout.start();
+
+        FirstMessageAppender appender = new FirstMessageAppender(layout);
+        appender.setContext(context);
+        appender.start();
+
+        Logger logger = context.getLogger(StartupBenchmark.class);
+        logger.addAppender(appender);
+        logger.info("Payment with card {} accepted", "5137 0049 8639 6403");
+
+        final long end = System.nanoTime();
+        final long firstLogAt = System.currentTimeMillis();
+        context.stop();
+
+        if (!"Payment with card ****MASKED*****6403 accepted".equals(appender.first)) {
+            throw new IllegalStateException("Unexpected output: " + appender.first);
+        }
+
+        System.out.println("Time from launch to first masked log: "
+                + (firstLogAt - launchedAt) + " ms");
+        System.out.println("Time from main to first masked log: "
+                + (end - start) / 1000 + " us");
+        try {
+            // the JVM notes its start time only once it is partly initialized
+            System.out.println("Time from JVM start to first masked log: "
+                    + (firstLogAt - ManagementFactory.getRuntimeMXBean().getStartTime())
+                    + " ms");
+        } catch (RuntimeException ex) {
+            // not available in every native image configuration
+        }
+    }
+
+    static class FirstMessageAppender extends AppenderBase<ILoggingEvent> {
+
+        final PatternLayout layout;
+        String first;
+
+        FirstMessageAppender(PatternLayout layout) {
+            this.layout = layout;
+        }
+
+        @Override
+        protected void append(ILoggingEvent event) {
+            if (first == null) {
+                first = layout.doLayout(event);
+            }
+        }
+    }
+}